@@ -0,0 +1,128 @@
+/*
+ * This class is provided under Apache License, Version 2.0
+ */
+
+package st.theori.apps.ec2_knock_knock;
+
+/**
+ * An immutable CIDR block of addresses, held as a network IngressAddress and a prefix length; membership tests are
+ * 	a pair of masked long comparisons.
+ *
+ * The prefix length is in terms of the block's own family - so 24 for 10.1.2.0/24 - even though IPv4 addresses are
+ * 	held in their 128 bit mapped form.
+ */
+final class AddressBlock {
+
+	static private final int IPV4_MAPPED_PREFIX_OFFSET = IngressAddress.IPV6_BIT_LENGTH - IngressAddress.IPV4_BIT_LENGTH;
+
+	/*
+	 * Parses either a CIDR block or a bare address, the latter being taken as the single host block.
+	 */
+	static AddressBlock parse (final String block)
+			throws IllegalArgumentException {
+		final int slashIndex = block.indexOf('/');
+		final IngressAddress address;
+		final int prefixLength;
+
+		if (slashIndex == -1) {
+			address = IngressAddress.parse(block.trim());
+
+			return new AddressBlock(address, address.getBitLength());
+		}
+
+		address = IngressAddress.parse(block.substring(0, slashIndex).trim());
+		try {
+			prefixLength = Integer.parseInt(block.substring(slashIndex + 1).trim());
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Unparseable prefix length in block: " + block);
+		}
+
+		if ((prefixLength < 0) || (prefixLength > address.getBitLength())) {
+			throw new IllegalArgumentException("Prefix length out of range in block: " + block);
+		}
+
+		return new AddressBlock(address, prefixLength);
+	}
+
+	static private long highMask (final int fullPrefixLength) {
+		if (fullPrefixLength >= 64) {
+			return -1L;
+		}
+
+		return (fullPrefixLength == 0) ? 0L : (-1L << (64 - fullPrefixLength));
+	}
+
+	static private long lowMask (final int fullPrefixLength) {
+		if (fullPrefixLength <= 64) {
+			return 0L;
+		}
+
+		return (fullPrefixLength == 128) ? -1L : (-1L << (128 - fullPrefixLength));
+	}
+
+
+	final IngressAddress network;
+	final int prefixLength;
+
+	private final long highMask;
+	private final long lowMask;
+
+	AddressBlock (final IngressAddress address, final int prefix) {
+		final int fullPrefixLength = address.isIPv4() ? (prefix + IPV4_MAPPED_PREFIX_OFFSET) : prefix;
+
+		this.highMask = AddressBlock.highMask(fullPrefixLength);
+		this.lowMask = AddressBlock.lowMask(fullPrefixLength);
+
+		// Normalize away any host bits, so that 10.1.2.3/24 is 10.1.2.0/24
+		this.network = IngressAddress.fromBits((address.high & this.highMask), (address.low & this.lowMask));
+		this.prefixLength = prefix;
+	}
+
+	boolean isIPv4 () {
+		return this.network.isIPv4();
+	}
+
+	/*
+	 * An IPv6 block never contains an IPv4 address (nor vice versa), even though the mapped form of every IPv4
+	 * 	address lies within ::/0 and the like; EC2 applies a block's rule only to its own family.
+	 */
+	boolean contains (final IngressAddress address) {
+		if (this.isIPv4() != address.isIPv4()) {
+			return false;
+		}
+
+		return (((address.high & this.highMask) == this.network.high)
+					&& ((address.low & this.lowMask) == this.network.low));
+	}
+
+	String toCidr () {
+		return this.network.toString() + "/" + this.prefixLength;
+	}
+
+	@Override
+	public String toString () {
+		return this.toCidr();
+	}
+
+	@Override
+	public boolean equals (final Object o) {
+		if (this == o) {
+			return true;
+		}
+
+		if (! (o instanceof AddressBlock)) {
+			return false;
+		}
+
+		final AddressBlock other = (AddressBlock)o;
+
+		return ((this.prefixLength == other.prefixLength) && this.network.equals(other.network));
+	}
+
+	@Override
+	public int hashCode () {
+		return (this.network.hashCode() * 31) + this.prefixLength;
+	}
+
+}
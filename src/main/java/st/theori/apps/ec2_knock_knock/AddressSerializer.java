@@ -0,0 +1,68 @@
+/*
+ * This class is provided under Apache License, Version 2.0
+ */
+
+package st.theori.apps.ec2_knock_knock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Serializes the knock, goodbye and expiration operations on any one address, so that the EC2 call and the
+ * 	backing store write of one are never interleaved with those of another; operations on different addresses
+ * 	proceed in parallel.
+ *
+ * Each address in use has its own fair lock, so operations on it run in arrival order; the lock is created on first
+ * 	use and discarded once no thread holds or awaits it, so we don't accumulate one per address ever seen. There is
+ * 	no global lock - the map only locks the bin of the address at hand - and the operation runs on the calling
+ * 	thread, so the uncontended cost is a couple of map operations and a lock acquisition.
+ */
+class AddressSerializer {
+
+	private final ConcurrentHashMap<IngressAddress, AddressLock> locks;
+
+	AddressSerializer () {
+		this.locks = new ConcurrentHashMap<>();
+	}
+
+	<T> T serialize (final IngressAddress address, final Supplier<T> operation) {
+		final AddressLock lock = this.locks.compute(address, (key, existing) -> {
+			final AddressLock rhett = (existing != null) ? existing : new AddressLock();
+
+			rhett.users++;
+
+			return rhett;
+		});
+
+		lock.lock();
+		try {
+			return operation.get();
+		}
+		finally {
+			lock.unlock();
+
+			this.locks.computeIfPresent(address, (key, existing) -> (--existing.users == 0) ? null : existing);
+		}
+	}
+
+
+	/*
+	 * The user count is only ever touched inside the map's compute functions, which are atomic per key.
+	 */
+	static private class AddressLock
+			extends ReentrantLock {
+
+		static private final long serialVersionUID = 1L;
+
+		private int users;
+
+		AddressLock () {
+			super(true);
+
+			this.users = 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,212 @@
+/*
+ * This class is provided under Apache License, Version 2.0
+ */
+
+package st.theori.apps.ec2_knock_knock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A compact, immutable form of a requester's IP address; it is parsed once when a request arrives and is thereafter
+ * 	what we key sessions on, both in the backing store and in memory.
+ *
+ * Both families are held as a 128 bit value in two longs; IPv4 addresses are held in their IPv4-mapped IPv6 form
+ * 	(::ffff:a.b.c.d) so that the low long carries the address as its low 32 bits and an IPv4 address and its
+ * 	mapped IPv6 spelling are the same key.
+ */
+final class IngressAddress {
+
+	static final int IPV4_BIT_LENGTH = 32;
+	static final int IPV6_BIT_LENGTH = 128;
+	static final int BYTE_LENGTH = 16;
+
+	static private final long IPV4_MAPPED_MASK = 0xFFFFFFFF00000000L;
+	static private final long IPV4_MAPPED_MARKER = 0x0000FFFF00000000L;
+
+	/*
+	 * Parses a textual IPv4 or IPv6 address, as handed to us by Jetty; no name resolution is ever performed.
+	 */
+	static IngressAddress parse (final String address)
+			throws IllegalArgumentException {
+		if ((address == null) || (address.length() == 0)) {
+			throw new IllegalArgumentException("No address was specified.");
+		}
+
+		if (address.indexOf(':') == -1) {
+			return IngressAddress.fromIPv4(IngressAddress.parseIPv4(address));
+		}
+
+		String literal = address;
+		final int zoneIndex;
+
+		if ((literal.charAt(0) == '[') && (literal.charAt(literal.length() - 1) == ']')) {
+			literal = literal.substring(1, literal.length() - 1);
+		}
+
+		zoneIndex = literal.indexOf('%');
+		if (zoneIndex != -1) {
+			literal = literal.substring(0, zoneIndex);
+		}
+
+		try {
+			// The brackets guarantee InetAddress treats this as a literal and never attempts a lookup
+			return IngressAddress.fromBytes(InetAddress.getByName("[" + literal + "]").getAddress());
+		}
+		catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Unparseable address: " + address);
+		}
+	}
+
+	static IngressAddress fromBits (final long highBits, final long lowBits) {
+		return new IngressAddress(highBits, lowBits);
+	}
+
+	static IngressAddress fromIPv4 (final int address) {
+		return new IngressAddress(0L, (IPV4_MAPPED_MARKER | (address & 0xFFFFFFFFL)));
+	}
+
+	/*
+	 * Accepts either a 4 or 16 byte network-order address.
+	 */
+	static IngressAddress fromBytes (final byte[] bytes)
+			throws IllegalArgumentException {
+		if (bytes.length == 4) {
+			return IngressAddress.fromIPv4(((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16)
+												| ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF));
+		}
+
+		if (bytes.length != BYTE_LENGTH) {
+			throw new IllegalArgumentException("Addresses must be 4 or 16 bytes, not " + bytes.length);
+		}
+
+		long high = 0;
+		long low = 0;
+
+		for (int i = 0; i < 8; i++) {
+			high = (high << 8) | (bytes[i] & 0xFF);
+			low = (low << 8) | (bytes[i + 8] & 0xFF);
+		}
+
+		return new IngressAddress(high, low);
+	}
+
+	static private int parseIPv4 (final String address)
+			throws IllegalArgumentException {
+		final String[] octets = address.split("\\.", -1);
+		int rhett = 0;
+
+		if (octets.length != 4) {
+			throw new IllegalArgumentException("Unparseable address: " + address);
+		}
+
+		for (String octet : octets) {
+			final int value;
+
+			if ((octet.length() == 0) || (octet.length() > 3)) {
+				throw new IllegalArgumentException("Unparseable address: " + address);
+			}
+
+			for (int i = 0; i < octet.length(); i++) {
+				if ((octet.charAt(i) < '0') || (octet.charAt(i) > '9')) {
+					throw new IllegalArgumentException("Unparseable address: " + address);
+				}
+			}
+
+			value = Integer.parseInt(octet);
+			if (value > 255) {
+				throw new IllegalArgumentException("Unparseable address: " + address);
+			}
+
+			rhett = (rhett << 8) | value;
+		}
+
+		return rhett;
+	}
+
+
+	final long high;
+	final long low;
+
+	private IngressAddress (final long highBits, final long lowBits) {
+		this.high = highBits;
+		this.low = lowBits;
+	}
+
+	boolean isIPv4 () {
+		return ((this.high == 0L) && ((this.low & IPV4_MAPPED_MASK) == IPV4_MAPPED_MARKER));
+	}
+
+	/*
+	 * Only meaningful when isIPv4() is true.
+	 */
+	int toIPv4 () {
+		return (int)this.low;
+	}
+
+	int getBitLength () {
+		return this.isIPv4() ? IPV4_BIT_LENGTH : IPV6_BIT_LENGTH;
+	}
+
+	/*
+	 * The 16 byte network-order form, as stored in the backing store.
+	 */
+	byte[] toBytes () {
+		final byte[] rhett = new byte[BYTE_LENGTH];
+
+		for (int i = 7; i >= 0; i--) {
+			rhett[i] = (byte)(this.high >>> ((7 - i) * 8));
+			rhett[i + 8] = (byte)(this.low >>> ((7 - i) * 8));
+		}
+
+		return rhett;
+	}
+
+	/*
+	 * The single host CIDR block for this address - /32 for IPv4, /128 for IPv6.
+	 */
+	String toCidr () {
+		return this.toString() + "/" + this.getBitLength();
+	}
+
+	@Override
+	public String toString () {
+		if (this.isIPv4()) {
+			final int address = this.toIPv4();
+
+			return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF)
+						+ "." + (address & 0xFF);
+		}
+
+		try {
+			return InetAddress.getByAddress(this.toBytes()).getHostAddress();
+		}
+		catch (UnknownHostException e) {
+			// Can't happen - getByAddress only complains about illegal lengths
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public boolean equals (final Object o) {
+		if (this == o) {
+			return true;
+		}
+
+		if (! (o instanceof IngressAddress)) {
+			return false;
+		}
+
+		final IngressAddress other = (IngressAddress)o;
+
+		return ((this.high == other.high) && (this.low == other.low));
+	}
+
+	@Override
+	public int hashCode () {
+		final long mixed = (this.high * 0x9E3779B97F4A7C15L) ^ this.low;
+
+		return (int)(mixed ^ (mixed >>> 32));
+	}
+
+}
@@ -11,24 +11,38 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
 /**
  * This is the annotated model class for the 'ingress session' table.
+ *
+ * The address is stored both as the 16 byte form of an IngressAddress, which is what we query on, and as text for
+ * 	the benefit of humans poking at the database. Rows written before the binary column existed have it filled in
+ * 	at startup by the PersistenceStoreTender.
+ *
+ * Sessions created for a scheduled ingress window carry the window's name and are for a whole address block, in
+ * 	which case the address columns hold the block's network address and the prefix length column is set.
  */
 @Entity
-@Table(name = IngressSession.TABLE_NAME)
+@Table(name = IngressSession.TABLE_NAME,
+	   indexes = { @Index(name = IngressSession.ADDRESS_BITS_INDEX_NAME,
+						  columnList = IngressSession.ADDRESS_BITS_COLUMN_NAME) })
 public class IngressSession {
 
 	static final String TABLE_NAME = "INGRESS_SESSION";
 
 	static final String ADDRESS_COLUMN_NAME = "IP_ADDRESS";
+	static final String ADDRESS_BITS_COLUMN_NAME = "IP_ADDRESS_BITS";
+	static final String ADDRESS_BITS_INDEX_NAME = "IDX_IP_ADDRESS_BITS";
 	static final String AUTHORIZATION_COLUMN_NAME = "AUTHORIZATION_DATE";
 	static final String EXPIRATION_COLUMN_NAME = "EXPIRATION_DATE";
 	static final String ID_COLUMN_NAME = "ID";
+	static final String PREFIX_LENGTH_COLUMN_NAME = "PREFIX_LENGTH";
 	static final String REVOCATION_COLUMN_NAME = "REVOCATION_DATE";
+	static final String WINDOW_COLUMN_NAME = "WINDOW_NAME";
 
 
 	@Id
@@ -39,6 +53,18 @@ public class IngressSession {
 	@Column(name = IngressSession.ADDRESS_COLUMN_NAME, updatable = false, nullable = false)
 	private String ipAddress;
 
+	// Nullable only so that hbm2ddl can add the column to pre-existing tables
+	@Column(name = IngressSession.ADDRESS_BITS_COLUMN_NAME, length = IngressAddress.BYTE_LENGTH)
+	private byte[] ipAddressBits;
+
+	// Null for a single host session
+	@Column(name = IngressSession.PREFIX_LENGTH_COLUMN_NAME, updatable = false)
+	private Integer prefixLength;
+
+	// Null for a session created by a knock
+	@Column(name = IngressSession.WINDOW_COLUMN_NAME, updatable = false)
+	private String windowName;
+
 	@Temporal(TemporalType.TIMESTAMP)
 	@Column(name = IngressSession.AUTHORIZATION_COLUMN_NAME, updatable = false, nullable = false)
 	private Date authorizationDate;
@@ -59,8 +85,61 @@ public class IngressSession {
 		return this.ipAddress;
 	}
 
-	public IngressSession setIpAddress (String address) {
-		this.ipAddress = address;
+	/*
+	 * Sets both the binary and textual forms of the address.
+	 */
+	public IngressSession setIpAddress (IngressAddress address) {
+		this.ipAddress = address.toString();
+		this.ipAddressBits = address.toBytes();
+
+		return this;
+	}
+
+	public byte[] getIpAddressBits () {
+		return this.ipAddressBits;
+	}
+
+	/*
+	 * Returns the parsed address, falling back to the textual form for rows which have not been backfilled.
+	 */
+	public IngressAddress getAddress () {
+		if (this.ipAddressBits != null) {
+			return IngressAddress.fromBytes(this.ipAddressBits);
+		}
+
+		return IngressAddress.parse(this.ipAddress);
+	}
+
+	/*
+	 * Sets the address columns to the block's network address, and the prefix length.
+	 */
+	public IngressSession setAddressBlock (AddressBlock block) {
+		this.ipAddress = block.toCidr();
+		this.ipAddressBits = block.network.toBytes();
+		this.prefixLength = Integer.valueOf(block.prefixLength);
+
+		return this;
+	}
+
+	/*
+	 * Returns the block for a window session, or the single host block for a knock session.
+	 */
+	public AddressBlock getAddressBlock () {
+		if (this.prefixLength != null) {
+			return new AddressBlock(IngressAddress.fromBytes(this.ipAddressBits), this.prefixLength.intValue());
+		}
+
+		final IngressAddress address = this.getAddress();
+
+		return new AddressBlock(address, address.getBitLength());
+	}
+
+	public String getWindowName () {
+		return this.windowName;
+	}
+
+	public IngressSession setWindowName (String name) {
+		this.windowName = name;
 
 		return this;
 	}
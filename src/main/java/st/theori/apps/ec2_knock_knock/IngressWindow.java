@@ -0,0 +1,229 @@
+/*
+ * This class is provided under Apache License, Version 2.0
+ */
+
+package st.theori.apps.ec2_knock_knock;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A declared, recurring window of time during which a set of address blocks has ingress, read from the windows
+ * 	file; each non-blank, non-comment line of which looks like:
+ *
+ * 		<name> <HH:mm>-<HH:mm> <days> <block>[,<block>...]
+ *
+ * 	where days is "*" or a comma separated list of days and day ranges (e.g. "MON-FRI,SUN") and each block is a
+ * 	CIDR block. A window whose end is not after its start runs over midnight, with the day being that of its start.
+ * 	Times are in the server's default time zone.
+ *
+ * A window's rules must never be the same EC2 rules as those of knocks or of other windows, else one could revoke
+ * 	the other's; so single host blocks (which are what knocks authorize) are refused, as is declaring the same
+ * 	block in more than one window.
+ */
+final class IngressWindow {
+
+	static private final String COMMENT_PREFIX = "#";
+	static private final String ALL_DAYS = "*";
+
+	static List<IngressWindow> loadFromFile (final String windowsFile)
+			throws IllegalArgumentException {
+		final List<IngressWindow> rhett = new ArrayList<>();
+		final Set<String> names = new HashSet<>();
+		final Map<AddressBlock, String> blockOwners = new HashMap<>();
+		final List<String> lines;
+
+		try {
+			lines = Files.readAllLines(Paths.get(windowsFile), StandardCharsets.UTF_8);
+		}
+		catch (IOException e) {
+			throw new IllegalArgumentException("Could not read the windows file " + windowsFile, e);
+		}
+
+		for (int i = 0; i < lines.size(); i++) {
+			final String line = lines.get(i).trim();
+
+			if ((line.length() == 0) || line.startsWith(COMMENT_PREFIX)) {
+				continue;
+			}
+
+			try {
+				final IngressWindow window = IngressWindow.parse(line);
+
+				if (! names.add(window.name)) {
+					throw new IllegalArgumentException("The window name " + window.name + " is used more than once.");
+				}
+
+				for (AddressBlock block : window.blocks) {
+					final String owner = blockOwners.putIfAbsent(block, window.name);
+
+					if (owner != null) {
+						throw new IllegalArgumentException("The block " + block + " is declared more than once, in "
+																+ "window " + owner + " and window " + window.name
+																+ ".");
+					}
+				}
+
+				rhett.add(window);
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Line " + (i + 1) + " of " + windowsFile + ": " + e.getMessage(), e);
+			}
+		}
+
+		return rhett;
+	}
+
+	static IngressWindow parse (final String line)
+			throws IllegalArgumentException {
+		final String[] fields = line.trim().split("\\s+");
+		final String[] times;
+		final List<AddressBlock> blocks = new ArrayList<>();
+
+		if (fields.length != 4) {
+			throw new IllegalArgumentException("Expected a name, time range, days and blocks but found: " + line);
+		}
+
+		times = fields[1].split("-");
+		if (times.length != 2) {
+			throw new IllegalArgumentException("Unparseable time range: " + fields[1]);
+		}
+
+		for (String block : fields[3].split(",")) {
+			if (block.length() > 0) {
+				final AddressBlock addressBlock = AddressBlock.parse(block);
+
+				if (addressBlock.prefixLength == addressBlock.network.getBitLength()) {
+					throw new IllegalArgumentException("The single host block " + addressBlock + " would be the same "
+															+ "rule as a knock from that host; hosts should knock.");
+				}
+
+				blocks.add(addressBlock);
+			}
+		}
+
+		if (blocks.isEmpty()) {
+			throw new IllegalArgumentException("No address blocks were specified for window " + fields[0]);
+		}
+
+		try {
+			return new IngressWindow(fields[0], LocalTime.parse(times[0]), LocalTime.parse(times[1]),
+									 IngressWindow.parseDays(fields[2]), blocks);
+		}
+		catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Unparseable time range: " + fields[1]);
+		}
+	}
+
+	static private Set<DayOfWeek> parseDays (final String days)
+			throws IllegalArgumentException {
+		final Set<DayOfWeek> rhett = EnumSet.noneOf(DayOfWeek.class);
+
+		if (ALL_DAYS.equals(days)) {
+			return EnumSet.allOf(DayOfWeek.class);
+		}
+
+		for (String range : days.split(",", -1)) {
+			final String[] ends = range.split("-", -1);
+			final DayOfWeek first;
+			final DayOfWeek last;
+			DayOfWeek day;
+
+			if (ends.length > 2) {
+				throw new IllegalArgumentException("Unparseable day range: " + range);
+			}
+
+			// parseDay refuses the empty ends of ranges like "MON-" and of lists like "MON,"
+			first = IngressWindow.parseDay(ends[0]);
+			last = (ends.length > 1) ? IngressWindow.parseDay(ends[1]) : first;
+			day = first;
+
+			// Ranges may wrap the week, e.g. FRI-MON
+			rhett.add(day);
+			while (day != last) {
+				day = day.plus(1);
+				rhett.add(day);
+			}
+		}
+
+		if (rhett.isEmpty()) {
+			throw new IllegalArgumentException("No days were specified: " + days);
+		}
+
+		return rhett;
+	}
+
+	static private DayOfWeek parseDay (final String day)
+			throws IllegalArgumentException {
+		final String upper = day.trim().toUpperCase();
+
+		for (DayOfWeek dow : DayOfWeek.values()) {
+			if ((upper.length() >= 3) && dow.name().startsWith(upper)) {
+				return dow;
+			}
+		}
+
+		throw new IllegalArgumentException("Unparseable day: " + day);
+	}
+
+
+	final String name;
+	final LocalTime startTime;
+	final LocalTime endTime;
+	final Set<DayOfWeek> days;
+	final List<AddressBlock> blocks;
+
+	IngressWindow (final String windowName, final LocalTime start, final LocalTime end, final Set<DayOfWeek> dows,
+				   final List<AddressBlock> addressBlocks) {
+		this.name = windowName;
+		this.startTime = start;
+		this.endTime = end;
+		this.days = Collections.unmodifiableSet(EnumSet.copyOf(dows));
+		this.blocks = Collections.unmodifiableList(new ArrayList<>(addressBlocks));
+	}
+
+	/*
+	 * If an occurrence of this window is in effect at the specified time - or will be within the lead time - returns
+	 * 	the time at which that occurrence ends; otherwise returns null.
+	 */
+	ZonedDateTime getActiveUntil (final ZonedDateTime now, final Duration lead) {
+		final boolean overnight = (! this.endTime.isAfter(this.startTime));
+
+		// Yesterday's occurrence may run over midnight, and tomorrow's may start within the lead time
+		for (int dayOffset = -1; dayOffset <= 1; dayOffset++) {
+			final LocalDate date = now.toLocalDate().plusDays(dayOffset);
+			final ZonedDateTime start;
+			final ZonedDateTime end;
+
+			if (! this.days.contains(date.getDayOfWeek())) {
+				continue;
+			}
+
+			start = ZonedDateTime.of(date, this.startTime, now.getZone());
+			end = ZonedDateTime.of((overnight ? date.plusDays(1) : date), this.endTime, now.getZone());
+
+			if ((! now.isBefore(start.minus(lead))) && now.isBefore(end)) {
+				return end;
+			}
+		}
+
+		return null;
+	}
+
+}
@@ -0,0 +1,433 @@
+/*
+ * This class is provided under Apache License, Version 2.0
+ */
+
+package st.theori.apps.ec2_knock_knock;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+import com.amazonaws.services.ec2.model.AuthorizeSecurityGroupIngressRequest;
+import com.amazonaws.services.ec2.model.RevokeSecurityGroupIngressRequest;
+
+/**
+ * Applies and removes the rules for scheduled ingress windows ahead of time, so that a crowd of people arriving at
+ * 	the start of a window doesn't become a crowd of individual EC2 calls; each window's blocks are authorized and
+ * 	revoked in batches, and recorded as sessions carrying the window's name.
+ *
+ * Rules are applied a lead time before the window starts and removed when it ends, unless another occurrence of
+ * 	the window follows straight on, in which case its sessions are extended instead. Which windows are applied is
+ * 	recovered from the backing store at startup, so a restart neither duplicates nor strands rules; windows which
+ * 	are no longer declared have their rules removed, as do blocks no longer declared in a window, and blocks
+ * 	newly declared in an applied window have theirs authorized, without waiting for the window to end.
+ *
+ * All application and removal happens on a single daemon thread; the knock path only reads an immutable snapshot
+ * 	of the applied windows.
+ */
+class IngressWindowScheduler {
+
+	static private final Logger LOGGER = LoggerFactory.getLogger(IngressWindowScheduler.class);
+
+	static private final Duration APPLY_LEAD = Duration.ofMinutes(5);
+	// Keeps each request comfortably within EC2's request size limits
+	static private final int BATCH_SIZE = 100;
+
+
+	final RevocationHelper revocationHelper;
+	final PersistenceStoreTender persistenceStoreTender;
+	final SessionEventBroadcaster eventBroadcaster;
+	final Map<String, IngressWindow> windows;
+
+	// Only touched by the scheduling thread, once started
+	private final Map<String, AppliedWindow> applied;
+	private volatile List<AppliedWindow> appliedSnapshot;
+
+	IngressWindowScheduler (final RevocationHelper rh, final PersistenceStoreTender pst,
+							final SessionEventBroadcaster seb, final List<IngressWindow> declaredWindows) {
+		this.revocationHelper = rh;
+		this.persistenceStoreTender = pst;
+		this.eventBroadcaster = seb;
+
+		this.windows = new LinkedHashMap<>();
+		for (IngressWindow window : declaredWindows) {
+			this.windows.put(window.name, window);
+		}
+
+		this.applied = new LinkedHashMap<>();
+		this.restoreAppliedWindows();
+
+		Thread t = new Thread(new SchedulingRunnable());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/*
+	 * Returns the applied window, if any, whose blocks already give the address ingress.
+	 */
+	AppliedWindow findCoveringWindow (final IngressAddress address) {
+		final long now = System.currentTimeMillis();
+
+		for (AppliedWindow appliedWindow : this.appliedSnapshot) {
+			if (appliedWindow.confirmed && (appliedWindow.until.getTime() > now)) {
+				for (AddressBlock block : appliedWindow.blocks) {
+					if (block.contains(address)) {
+						return appliedWindow;
+					}
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/*
+	 * The restored windows are not confirmed, as we may have stopped between recording a window's blocks and
+	 * 	authorizing their rules; the first tick authorizes them again.
+	 */
+	private void restoreAppliedWindows () {
+		final Map<String, List<AddressBlock>> blocks = new LinkedHashMap<>();
+		final Map<String, Date> untils = new LinkedHashMap<>();
+
+		for (IngressSession session : this.persistenceStoreTender.getOpenWindowSessions()) {
+			final Date until = untils.get(session.getWindowName());
+
+			blocks.computeIfAbsent(session.getWindowName(), (name) -> new ArrayList<>())
+				  .add(session.getAddressBlock());
+
+			if ((until == null) || until.before(session.getExpirationDate())) {
+				untils.put(session.getWindowName(), session.getExpirationDate());
+			}
+		}
+
+		for (Map.Entry<String, List<AddressBlock>> entry : blocks.entrySet()) {
+			this.applied.put(entry.getKey(),
+							 new AppliedWindow(entry.getKey(), entry.getValue(), untils.get(entry.getKey()), false));
+
+			LOGGER.info("Window {} has {} blocks applied until {}.", entry.getKey(), entry.getValue().size(),
+						untils.get(entry.getKey()));
+		}
+
+		this.publishSnapshot();
+	}
+
+	private void publishSnapshot () {
+		this.appliedSnapshot = Collections.unmodifiableList(new ArrayList<>(this.applied.values()));
+	}
+
+	/*
+	 * Removes the rules of windows which have ended (or are no longer declared), brings the rules of the others in
+	 * 	line with their declarations, and applies the rules of windows which are about to start.
+	 */
+	void tick () {
+		final ZonedDateTime now = ZonedDateTime.now();
+		final Iterator<Map.Entry<String, AppliedWindow>> it = this.applied.entrySet().iterator();
+		boolean changed = false;
+
+		while (it.hasNext()) {
+			final Map.Entry<String, AppliedWindow> entry = it.next();
+			final IngressWindow window = this.windows.get(entry.getKey());
+			AppliedWindow appliedWindow = entry.getValue();
+
+			if (window != null) {
+				final ZonedDateTime next = window.getActiveUntil(now, APPLY_LEAD);
+				final boolean ended = (! now.toInstant().isBefore(appliedWindow.until.toInstant()));
+
+				// Runs on into its next occurrence, if it has ended
+				if ((! ended) || ((next != null) && next.toInstant().isAfter(appliedWindow.until.toInstant()))) {
+					if ((! appliedWindow.confirmed) || (! appliedWindow.isAppliedAs(window))) {
+						appliedWindow = this.applyWindow(window, appliedWindow);
+						entry.setValue(appliedWindow);
+						changed = true;
+					}
+
+					if (ended) {
+						final Date until = Date.from(next.toInstant());
+
+						this.persistenceStoreTender.storeWindowExtension(appliedWindow.name, until);
+						appliedWindow.until = until;
+						changed = true;
+
+						for (AddressBlock block : appliedWindow.blocks) {
+							this.eventBroadcaster.publish(SessionEvent.Type.EXTENDED, block, until);
+						}
+
+						LOGGER.info("Window {} runs on into its next occurrence; extended until {}.",
+									appliedWindow.name, until);
+					}
+
+					continue;
+				}
+			}
+
+			if (this.revokeWindow(appliedWindow)) {
+				it.remove();
+				changed = true;
+			}
+		}
+
+		for (IngressWindow window : this.windows.values()) {
+			if (! this.applied.containsKey(window.name)) {
+				final ZonedDateTime until = window.getActiveUntil(now, APPLY_LEAD);
+
+				if (until != null) {
+					final AppliedWindow appliedWindow
+								= this.applyWindow(window, new AppliedWindow(window.name, Collections.emptyList(),
+																			 Date.from(until.toInstant()), false));
+
+					if (! appliedWindow.blocks.isEmpty()) {
+						this.applied.put(window.name, appliedWindow);
+						changed = true;
+					}
+				}
+			}
+		}
+
+		if (changed) {
+			this.publishSnapshot();
+		}
+	}
+
+	/*
+	 * Brings the rules of an applied window (which may be newly created, and empty) in line with the window's
+	 * 	declaration, returning what is then applied.
+	 *
+	 * The sessions for added blocks are recorded before their rules are authorized, so that whatever happens in
+	 * 	between - a failed EC2 call, our process dying - no rule of a window is ever in the security group without
+	 * 	our knowing to revoke it. A window is confirmed, and so considered to give ingress, only once all its
+	 * 	declared rules have been authorized; until then each tick tries again. Rules of blocks no longer declared
+	 * 	are revoked straight away.
+	 */
+	private AppliedWindow applyWindow (final IngressWindow window, final AppliedWindow appliedWindow) {
+		final List<AddressBlock> recorded = new ArrayList<>(appliedWindow.blocks);
+		final List<AddressBlock> added = new ArrayList<>(window.blocks);
+		final List<AddressBlock> removed = new ArrayList<>(appliedWindow.blocks);
+		boolean confirmed = false;
+
+		added.removeAll(appliedWindow.blocks);
+		removed.removeAll(window.blocks);
+
+		if (! added.isEmpty()) {
+			if (! this.persistenceStoreTender.storeSuccessfulWindowAuthorization(window.name, added,
+																				 appliedWindow.until)) {
+				LOGGER.error("Could not record the sessions for window {} - will retry.", window.name);
+
+				return appliedWindow;
+			}
+
+			recorded.addAll(added);
+		}
+
+		try {
+			final List<AddressBlock> toAuthorize = appliedWindow.confirmed ? added : window.blocks;
+
+			for (int i = 0; i < toAuthorize.size(); i += BATCH_SIZE) {
+				this.authorizeBatch(toAuthorize.subList(i, Math.min((i + BATCH_SIZE), toAuthorize.size())));
+			}
+
+			for (AddressBlock block : toAuthorize) {
+				this.eventBroadcaster.publish(SessionEvent.Type.AUTHORIZED, block, appliedWindow.until);
+			}
+
+			confirmed = true;
+
+			LOGGER.info("Applied window {} for {} blocks until {}.", window.name, toAuthorize.size(),
+						appliedWindow.until);
+		}
+		catch (AmazonEC2Exception e) {
+			LOGGER.error("Exception encountered applying window {} with message {} - will retry.", window.name,
+						 e.getMessage());
+		}
+
+		if (! removed.isEmpty()) {
+			try {
+				this.revokeBlocks(removed);
+				this.persistenceStoreTender.storeSuccessfulWindowRevocation(window.name, removed);
+
+				recorded.removeAll(removed);
+
+				for (AddressBlock block : removed) {
+					this.eventBroadcaster.publish(SessionEvent.Type.REVOKED, block, null);
+				}
+
+				LOGGER.info("Removed {} blocks no longer declared from window {}.", removed.size(), window.name);
+			}
+			catch (AmazonEC2Exception e) {
+				LOGGER.error("Exception encountered removing blocks from window {} with message {} - will retry.",
+							 window.name, e.getMessage());
+			}
+		}
+
+		return new AppliedWindow(window.name, recorded, appliedWindow.until, confirmed);
+	}
+
+	private boolean revokeWindow (final AppliedWindow appliedWindow) {
+		try {
+			this.revokeBlocks(appliedWindow.blocks);
+		}
+		catch (AmazonEC2Exception e) {
+			LOGGER.error("Exception encountered removing window {} with message {} - will retry.", appliedWindow.name,
+						 e.getMessage());
+
+			return false;
+		}
+
+		this.persistenceStoreTender.storeSuccessfulWindowRevocation(appliedWindow.name);
+
+		for (AddressBlock block : appliedWindow.blocks) {
+			this.eventBroadcaster.publish(SessionEvent.Type.REVOKED, block, null);
+		}
+
+		LOGGER.info("Removed window {} for {} blocks.", appliedWindow.name, appliedWindow.blocks.size());
+
+		return true;
+	}
+
+	private void revokeBlocks (final List<AddressBlock> blocks)
+			throws AmazonEC2Exception {
+		for (int i = 0; i < blocks.size(); i += BATCH_SIZE) {
+			this.revokeBatch(blocks.subList(i, Math.min((i + BATCH_SIZE), blocks.size())));
+		}
+	}
+
+	/*
+	 * EC2 refuses a whole batch if any one of its rules already exists, in which case we fall back to authorizing
+	 * 	the blocks one at a time. A rule which already exists is one of ours - we never declare a block twice, nor
+	 * 	one which could be a knock's rule, and we record each block before authorizing it - left there by an
+	 * 	earlier, failed or interrupted, application of its window.
+	 */
+	private void authorizeBatch (final List<AddressBlock> batch)
+			throws AmazonEC2Exception {
+		try {
+			this.authorize(batch);
+		}
+		catch (AmazonEC2Exception e) {
+			if (! Maine.DUPLICATE_RULE_ERROR_CODE.equals(e.getErrorCode())) {
+				throw e;
+			}
+
+			for (AddressBlock block : batch) {
+				try {
+					this.authorize(Collections.singletonList(block));
+				}
+				catch (AmazonEC2Exception blockException) {
+					if (! Maine.DUPLICATE_RULE_ERROR_CODE.equals(blockException.getErrorCode())) {
+						throw blockException;
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * The mirror of authorizeBatch, for rules which have already gone.
+	 */
+	private void revokeBatch (final List<AddressBlock> batch)
+			throws AmazonEC2Exception {
+		try {
+			this.revoke(batch);
+		}
+		catch (AmazonEC2Exception e) {
+			if (! Maine.MISSING_RULE_ERROR_CODE.equals(e.getErrorCode())) {
+				throw e;
+			}
+
+			for (AddressBlock block : batch) {
+				try {
+					this.revoke(Collections.singletonList(block));
+				}
+				catch (AmazonEC2Exception blockException) {
+					if (! Maine.MISSING_RULE_ERROR_CODE.equals(blockException.getErrorCode())) {
+						throw blockException;
+					}
+				}
+			}
+		}
+	}
+
+	private void authorize (final List<AddressBlock> blocks) {
+		final RevocationHelper rh = this.revocationHelper;
+
+		rh.ec2Instance.authorizeSecurityGroupIngress(new AuthorizeSecurityGroupIngressRequest()
+															.withGroupId(rh.securityGroupId)
+															.withIpPermissions(rh.buildPermission(blocks)));
+	}
+
+	private void revoke (final List<AddressBlock> blocks) {
+		final RevocationHelper rh = this.revocationHelper;
+
+		rh.ec2Instance.revokeSecurityGroupIngress(new RevokeSecurityGroupIngressRequest()
+														.withGroupId(rh.securityGroupId)
+														.withIpPermissions(rh.buildPermission(blocks)));
+	}
+
+
+	static class AppliedWindow {
+
+		final String name;
+		final List<AddressBlock> blocks;
+		// Whether the rules of all the blocks have been authorized
+		final boolean confirmed;
+		volatile Date until;
+
+		AppliedWindow (final String windowName, final List<AddressBlock> addressBlocks, final Date untilDate,
+					   final boolean allAuthorized) {
+			this.name = windowName;
+			this.blocks = Collections.unmodifiableList(new ArrayList<>(addressBlocks));
+			this.confirmed = allAuthorized;
+			this.until = untilDate;
+		}
+
+		boolean isAppliedAs (final IngressWindow window) {
+			return new HashSet<>(this.blocks).equals(new HashSet<>(window.blocks));
+		}
+
+	}
+
+
+	/*
+	 * Simple runnable expected to be executed in a daemon thread; ticks the scheduler once at startup and then every
+	 * 	PersistenceStoreTender.RUNNABLE_SLEEP thereafter.
+	 */
+	protected class SchedulingRunnable
+			implements Runnable {
+
+		public void run () {
+			LOGGER.info("Window scheduling runnable started with {} windows.",
+						IngressWindowScheduler.this.windows.size());
+
+			while (true) {
+				try {
+					IngressWindowScheduler.this.tick();
+				}
+				catch (Exception e) {
+					LOGGER.error("Exception caught while scheduling windows.", e);
+				}
+
+				try {
+					Thread.sleep(PersistenceStoreTender.RUNNABLE_SLEEP);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+
+					LOGGER.info("Window scheduling runnable interrupted - exiting.");
+
+					return;
+				}
+			}
+		}
+
+	}
+
+}
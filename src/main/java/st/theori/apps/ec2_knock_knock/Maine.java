@@ -6,7 +6,10 @@ package st.theori.apps.ec2_knock_knock;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
@@ -24,6 +27,7 @@ import com.amazonaws.services.ec2.model.AuthorizeSecurityGroupIngressRequest;
 import com.amazonaws.services.ec2.model.AuthorizeSecurityGroupIngressResult;
 import com.amazonaws.services.ec2.model.RevokeSecurityGroupIngressResult;
 
+import spark.Request;
 import spark.Spark;
 
 /**
@@ -37,9 +41,12 @@ import spark.Spark;
  */
 public final class Maine {
 
-	static final String CIDR_SUFFIX = "/32";
 	static final String PROTOCOL = "tcp";
 
+	// The error codes EC2 gives when authorizing a rule which already exists, or revoking one which doesn't
+	static final String DUPLICATE_RULE_ERROR_CODE = "InvalidPermission.Duplicate";
+	static final String MISSING_RULE_ERROR_CODE = "InvalidPermission.NotFound";
+
 	// Until there's a real release process, keep name and version hard coded here
 	static private final String APP_NAME = "EC2 Knock Knock Server";
 	static private final String APP_VERSION = "1.0.0";
@@ -48,6 +55,9 @@ public final class Maine {
 	static private final String INGRESS_PORT_OPTION = "ingressPort";
 	static private final String LISTEN_PORT_OPTION = "listenPort";
 
+	static private final String EVENTS_URL_OPTION = "eventsUrl";
+	static private final String WINDOWS_FILE_OPTION = "windowsFile";
+
 	static private final String DATABASE_FILE_OPTION = "dbFile";
 	static private final String SECURITY_GROUP_ID_OPTION = "sgId";
 	static private final String URL_OPTION = "url";
@@ -90,6 +100,26 @@ public final class Maine {
 				  .build();
 		rhett.addOption(o);
 
+		o = Option.builder(EVENTS_URL_OPTION)
+				  .required(false)
+				  .hasArg()
+				  .desc("If specified, a server-sent-events stream of session authorizations, extensions, revocations "
+							+ "and expirations will be served on this relative URL; clients may resume from an event "
+							+ "sequence number via the Last-Event-ID header or a \"" + SessionEventBroadcaster.SINCE_PARAMETER
+							+ "\" query parameter.")
+				  .build();
+		rhett.addOption(o);
+
+		o = Option.builder(WINDOWS_FILE_OPTION)
+				  .required(false)
+				  .hasArg()
+				  .desc("If specified, this is the path to a file declaring recurring ingress windows, one per line "
+							+ "as: <name> <HH:mm>-<HH:mm> <days, e.g. MON-FRI, or *> <CIDR block>[,<CIDR block>...] ; "
+							+ "the rules for each window are applied shortly before it starts and removed when it "
+							+ "ends, and knocks from addresses it covers need no further authorization.")
+				  .build();
+		rhett.addOption(o);
+
 		o = Option.builder(DATABASE_FILE_OPTION)
 				  .required()
 				  .hasArg()
@@ -160,6 +190,27 @@ public final class Maine {
 		return defaultValue;
 	}
 
+	/*
+	 * The one place we turn the requester's textual address into its compact form; a request whose address we can't
+	 * 	make sense of is refused.
+	 */
+	static private IngressAddress parseRequestAddress (final Request request) {
+		try {
+			return IngressAddress.parse(request.ip());
+		}
+		catch (IllegalArgumentException e) {
+			LOGGER.warn("Refusing request from an unparseable address: {}", e.getMessage());
+
+			throw Spark.halt(400, "Unparseable address " + request.ip());
+		}
+	}
+
+	static private String buildWindowGoodbye (final IngressAddress address,
+											  final IngressWindowScheduler.AppliedWindow coveringWindow) {
+		return "Goodbye " + address + " -- your access through the " + coveringWindow.name + " window continues until "
+					+ DATE_FORMAT.format(coveringWindow.until);
+	}
+
 
 	static public void main (final String[] args) {
 		final Options options = Maine.buildApplicationOptions();
@@ -174,6 +225,13 @@ public final class Maine {
 			final String dbFile = cl.getOptionValue(DATABASE_FILE_OPTION);
 			final String rootURL = cl.getOptionValue(URL_OPTION);
 			final String sgId = cl.getOptionValue(SECURITY_GROUP_ID_OPTION);
+			final String eventsURL = cl.getOptionValue(EVENTS_URL_OPTION);
+			final String windowsFile = cl.getOptionValue(WINDOWS_FILE_OPTION);
+			final List<IngressWindow> windows;
+			final IngressWindowScheduler windowScheduler;
+			final SessionEventBroadcaster eventBroadcaster;
+			final AddressSerializer addressSerializer;
+			final long expirationMS;
 			final PersistenceStoreTender persistenceStoreTender;
 			final RevocationHelper revocationHelper;
 			final String expirationString;
@@ -194,6 +252,7 @@ public final class Maine {
 											  "Could not parse specified expiration value - using the default "
 											  		+ "value of " + DEFAULT_EXPIRATION + " instead.",
 											  DEFAULT_EXPIRATION);
+			expirationMS = TimeUnit.MINUTES.toMillis(expiration);
 			ingressPort = Maine.getOptionValue(cl, INGRESS_PORT_OPTION,
 											"Could not parse specified ingress port value - using the default "
 													+ "value of " + DEFAULT_INGRESS_PORT + " instead.",
@@ -203,86 +262,162 @@ public final class Maine {
 												+ "value of " + DEFAULT_LISTEN_PORT + " instead.",
 											DEFAULT_LISTEN_PORT);
 
+			// Read this before doing anything else so that a bad file is reported without side effects
+			if (StringUtils.isNotBlank(windowsFile)) {
+				windows = IngressWindow.loadFromFile(windowsFile);
+			}
+			else {
+				windows = Collections.emptyList();
+			}
+
 			ec2 = AmazonEC2ClientBuilder.defaultClient();
 
 			revocationHelper = new RevocationHelper(ec2, ingressPort, sgId);
-			persistenceStoreTender = new PersistenceStoreTender(revocationHelper, dbFile, expiration);
+			eventBroadcaster = new SessionEventBroadcaster();
+			addressSerializer = new AddressSerializer();
+			persistenceStoreTender = new PersistenceStoreTender(revocationHelper, eventBroadcaster, addressSerializer,
+																dbFile, expiration);
+			// Created even with no windows declared, so that the rules of any previously declared windows are removed
+			windowScheduler = new IngressWindowScheduler(revocationHelper, persistenceStoreTender, eventBroadcaster,
+														 windows);
 
 			Spark.port(bindPort);
 
 			// authorize
 			Spark.get(rootURL, (request, response) -> {
-				String address = request.ip();
-				final AuthorizeSecurityGroupIngressRequest authorizeRequest = new AuthorizeSecurityGroupIngressRequest()
-																					.withGroupId(sgId)
-																					.withFromPort(ingressPort)
-																					.withToPort(ingressPort)
-																					.withCidrIp(address + CIDR_SUFFIX)
-																					.withIpProtocol(PROTOCOL);
+				final IngressAddress address = Maine.parseRequestAddress(request);
+				final IngressWindowScheduler.AppliedWindow coveringWindow = windowScheduler.findCoveringWindow(address);
+				final AuthorizeSecurityGroupIngressRequest authorizeRequest;
+
+				// A window ending before a knock's session would have is no substitute for the session
+				if ((coveringWindow != null)
+						&& (coveringWindow.until.getTime() >= (System.currentTimeMillis() + expirationMS))) {
+					LOGGER.info("Received knock-knock request - {} is already covered by window {}", address,
+								coveringWindow.name);
+
+					return "Hello " + address + " you have access through the " + coveringWindow.name
+								+ " window until " + DATE_FORMAT.format(coveringWindow.until);
+				}
 
-				try {
-					final AuthorizeSecurityGroupIngressResult result = ec2.authorizeSecurityGroupIngress(authorizeRequest);
-					final Date expirationDate;
+				authorizeRequest = new AuthorizeSecurityGroupIngressRequest()
+											.withGroupId(sgId)
+											.withIpPermissions(revocationHelper.buildPermission(address));
 
-					LOGGER.info("Received knock-knock request - have authorized ingress for {}", address);
+				// Serialized with any other knock, goodbye or expiration for this address
+				return addressSerializer.serialize(address, () -> {
+					try {
+						final AuthorizeSecurityGroupIngressResult result = ec2.authorizeSecurityGroupIngress(authorizeRequest);
+						final Date expirationDate;
 
-					expirationDate = persistenceStoreTender.storeSuccessfulAuthorization(address);
+						LOGGER.info("Received knock-knock request - have authorized ingress for {}", address);
 
-					if (expirationDate != null) {
-						return "Hello " + address + " your session will expire at " + DATE_FORMAT.format(expirationDate);
-					}
-					else {
-						return "Hello " + address + " -- !! we have failed to track your session in the database, "
-									+ " when finished, please explicitly close your session the URL: " + byeURL;
-					}
-				}
-				catch (AmazonEC2Exception e) {
-					String msg = e.getMessage();
+						expirationDate = persistenceStoreTender.storeSuccessfulAuthorization(address);
 
-					LOGGER.error("Exception encountered during knock-knock for {} with message {}", address, msg);
+						if (expirationDate != null) {
+							// Untracked sessions are not announced, as subscribers would believe them to be tracked
+							eventBroadcaster.publish(SessionEvent.Type.AUTHORIZED, address, expirationDate);
 
-					if (msg != null) {
-						msg = msg.replaceAll(sgId, "sg-XXXXXXXX");
-					}
-					else {
-						msg = "No exception message exists.";
+							return "Hello " + address + " your session will expire at " + DATE_FORMAT.format(expirationDate);
+						}
+						else {
+							return "Hello " + address + " -- !! we have failed to track your session in the database, "
+										+ " when finished, please explicitly close your session the URL: " + byeURL;
+						}
 					}
+					catch (AmazonEC2Exception e) {
+						String msg = e.getMessage();
 
-					return "Failed Hello " + address + " -- " + msg;
-				}
+						// The rule is already in place; if we're tracking a session for it, treat this as a renewal
+						if (DUPLICATE_RULE_ERROR_CODE.equals(e.getErrorCode())) {
+							final Date expirationDate = persistenceStoreTender.extendOpenSession(address);
+
+							if (expirationDate != null) {
+								LOGGER.info("Received knock-knock request - have extended ingress for {}", address);
+
+								eventBroadcaster.publish(SessionEvent.Type.EXTENDED, address, expirationDate);
+
+								return "Hello again " + address + " your session has been extended to "
+											+ DATE_FORMAT.format(expirationDate);
+							}
+						}
+
+						LOGGER.error("Exception encountered during knock-knock for {} with message {}", address, msg);
+
+						if (msg != null) {
+							msg = msg.replaceAll(sgId, "sg-XXXXXXXX");
+						}
+						else {
+							msg = "No exception message exists.";
+						}
+
+						return "Failed Hello " + address + " -- " + msg;
+					}
+				});
 			});
 
 
 			// revoke
 			Spark.get(byeURL, (request, response) -> {
-				final String address = request.ip();
+				final IngressAddress address = Maine.parseRequestAddress(request);
+				final IngressWindowScheduler.AppliedWindow coveringWindow = windowScheduler.findCoveringWindow(address);
 
-				try {
-					final RevokeSecurityGroupIngressResult result = revocationHelper.performRevocationOnAddress(address);
+				// Serialized with any other knock, goodbye or expiration for this address
+				return addressSerializer.serialize(address, () -> {
+					// A goodbye can't take away what a window gives; only a rule of the address' own is revoked, and
+					//		a covered address without a session usually has none - but may, should the storing of its
+					//		session have failed, so we still try.
+					final boolean untrackedInWindow = ((coveringWindow != null)
+															&& (! persistenceStoreTender.hasOpenSession(address)));
 
-					LOGGER.info("Received goodbye request - have revoked ingress for {}", address);
+					try {
+						final RevokeSecurityGroupIngressResult result = revocationHelper.performRevocationOnAddress(address);
 
-					persistenceStoreTender.storeSuccessfulRevocation(address);
+						LOGGER.info("Received goodbye request - have revoked ingress for {}", address);
 
-					return "Goodbye " + address;
-				}
-				catch (AmazonEC2Exception e) {
-					String msg = e.getMessage();
+						if (! untrackedInWindow) {
+							persistenceStoreTender.storeSuccessfulRevocation(address);
+						}
+						eventBroadcaster.publish(SessionEvent.Type.REVOKED, address, null);
 
-					LOGGER.error("Exception encountered during goodbye for {} with message {}", address, msg);
+						if (coveringWindow != null) {
+							return Maine.buildWindowGoodbye(address, coveringWindow);
+						}
 
-					if (msg != null) {
-						msg = msg.replaceAll(sgId, "sg-XXXXXXXX");
-					}
-					else {
-						msg = "No exception message exists.";
+						return "Goodbye " + address;
 					}
+					catch (AmazonEC2Exception e) {
+						String msg = e.getMessage();
 
-					return "Failed Goodbye " + address + " -- " + msg;
-				}
+						if (untrackedInWindow && MISSING_RULE_ERROR_CODE.equals(e.getErrorCode())) {
+							LOGGER.info("Received goodbye request - {} is covered by window {}, and there is nothing "
+											+ "to revoke", address, coveringWindow.name);
+
+							return Maine.buildWindowGoodbye(address, coveringWindow);
+						}
+
+						LOGGER.error("Exception encountered during goodbye for {} with message {}", address, msg);
+
+						if (msg != null) {
+							msg = msg.replaceAll(sgId, "sg-XXXXXXXX");
+						}
+						else {
+							msg = "No exception message exists.";
+						}
+
+						return "Failed Goodbye " + address + " -- " + msg;
+					}
+				});
 			});
 
 
+			// lifecycle event stream
+			if (StringUtils.isNotBlank(eventsURL)) {
+				Spark.get(eventsURL, eventBroadcaster::stream);
+
+				LOGGER.info("Serving session lifecycle events on {}", eventsURL);
+			}
+
+
 			LOGGER.info("For security group id {}, we are authorizing ingresses on {} and revoking on {}. Session expiration is {} minutes.",
 						sgId, rootURL, byeURL, Integer.toString(expiration));
 		}
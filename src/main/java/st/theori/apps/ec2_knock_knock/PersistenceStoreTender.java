@@ -5,7 +5,9 @@
 package st.theori.apps.ec2_knock_knock;
 
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import org.hibernate.Session;
@@ -13,11 +15,15 @@ import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.query.Query;
+import org.hibernate.type.BinaryType;
+import org.hibernate.type.IntegerType;
 import org.hibernate.type.StringType;
 import org.hibernate.type.TimestampType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+
 /**
  * This is both a DAO and a tender to the session expirations; were we writing this with abstraction in
  * 	heart, we'd separate out the specific backing store mechanisms and keep this pluggable. As i'm content
@@ -34,29 +40,82 @@ class PersistenceStoreTender {
 	static private final String EXPIRATION_QUERY
 								= "FROM IngressSession"
 									+ " WHERE (revocationDate IS NULL)"
+											+ " AND (windowName IS NULL)"
+											+ " AND (expirationDate < CURRENT_TIMESTAMP())";
+	static private final String STILL_EXPIRED_QUERY
+								= "SELECT COUNT(*) FROM IngressSession"
+									+ " WHERE (id = :rowId)"
+											+ " AND (revocationDate IS NULL)"
 											+ " AND (expirationDate < CURRENT_TIMESTAMP())";
 	static private final String OPEN_FOR_IP_QUERY
 								= "FROM IngressSession"
 									+ " WHERE (revocationDate IS NULL)"
-											+ " AND (ipAddress = :ipAddress)";
+											+ " AND (windowName IS NULL)"
+											+ " AND (ipAddressBits = :ipAddressBits)";
+	static private final String OPEN_COUNT_FOR_IP_QUERY
+								= "SELECT COUNT(*) FROM IngressSession"
+									+ " WHERE (revocationDate IS NULL)"
+											+ " AND (windowName IS NULL)"
+											+ " AND (ipAddressBits = :ipAddressBits)";
+	static private final String OPEN_WINDOWS_QUERY
+								= "FROM IngressSession"
+									+ " WHERE (revocationDate IS NULL)"
+											+ " AND (windowName IS NOT NULL)";
+	static private final String WINDOW_EXTENSION_UPDATE
+								= "UPDATE IngressSession"
+									+ " SET expirationDate = :expireDateTime"
+									+ " WHERE (revocationDate IS NULL)"
+											+ " AND (windowName = :windowName)";
+	static private final String WINDOW_REVOCATION_UPDATE
+								= "UPDATE IngressSession"
+									+ " SET revocationDate = :revokeDateTime"
+									+ " WHERE (revocationDate IS NULL)"
+											+ " AND (windowName = :windowName)";
+	static private final String WINDOW_BLOCK_REVOCATION_UPDATE
+								= "UPDATE IngressSession"
+									+ " SET revocationDate = :revokeDateTime"
+									+ " WHERE (revocationDate IS NULL)"
+											+ " AND (windowName = :windowName)"
+											+ " AND (ipAddressBits = :ipAddressBits)"
+											+ " AND (prefixLength = :prefixLength)";
+	static private final String MISSING_BITS_QUERY
+								= "FROM IngressSession"
+									+ " WHERE ipAddressBits IS NULL";
+	static private final String BITS_UPDATE
+								= "UPDATE IngressSession"
+									+ " SET ipAddressBits = :ipAddressBits"
+									+ " WHERE id = :rowId";
 	static private final String REVOCATION_UPDATE
 								= "UPDATE IngressSession"
 									+ " SET revocationDate = :revokeDateTime"
 									+ " WHERE id = :rowId";
+	static private final String EXTENSION_UPDATE
+								= "UPDATE IngressSession"
+									+ " SET expirationDate = :expireDateTime"
+									+ " WHERE (revocationDate IS NULL)"
+											+ " AND (windowName IS NULL)"
+											+ " AND (ipAddressBits = :ipAddressBits)";
 
 
 	final RevocationHelper revocationHelper;
+	final SessionEventBroadcaster eventBroadcaster;
+	final AddressSerializer addressSerializer;
 	final long expirationMS;
 
 	final SessionFactory sessionFactory;
 
-	PersistenceStoreTender (final RevocationHelper rr, final String databaseFile, final int expiration) {
+	PersistenceStoreTender (final RevocationHelper rr, final SessionEventBroadcaster seb, final AddressSerializer as,
+							final String databaseFile, final int expiration) {
 		this.revocationHelper = rr;
+		this.eventBroadcaster = seb;
+		this.addressSerializer = as;
 
 		this.expirationMS = TimeUnit.MINUTES.toMillis(expiration);
 
 		this.sessionFactory = this.connectToDatabase(databaseFile);
 
+		this.backfillAddressBits();
+
 		this.logTableInformation(true);
 
 		Thread t = new Thread(new ExpirationRunnable());
@@ -113,6 +172,56 @@ class PersistenceStoreTender {
 		}
 	}
 
+	/*
+	 * Rows written before addresses were stored in binary form have only the textual address; fill in the binary
+	 * 	form for these so that our queries, which match only on the binary form, see them.
+	 */
+	final void backfillAddressBits () {
+		final Session s = this.sessionFactory.openSession();
+		Transaction t = null;
+
+		try {
+			final List<IngressSession> is;
+			int filled = 0;
+
+			t = s.beginTransaction();
+
+			is = s.createQuery(MISSING_BITS_QUERY, IngressSession.class).list();
+			for (IngressSession ingressSession : is) {
+				try {
+					final IngressAddress address = IngressAddress.parse(ingressSession.getIpAddress());
+
+					s.createQuery(BITS_UPDATE)
+					 .setParameter("ipAddressBits", address.toBytes(), BinaryType.INSTANCE)
+					 .setParameter("rowId", ingressSession.getId())
+					 .executeUpdate();
+
+					filled++;
+				}
+				catch (IllegalArgumentException e) {
+					LOGGER.warn("Could not parse the address of session {}: {}", ingressSession.getId(),
+								e.getMessage());
+				}
+			}
+
+			t.commit();
+
+			if (filled > 0) {
+				LOGGER.info("Filled in the binary address for {} pre-existing sessions.", filled);
+			}
+		}
+		catch (Exception e) {
+			if (t != null) {
+				t.rollback();
+			}
+
+			LOGGER.error("Exception caught attempting to fill in binary addresses.", e);
+		}
+		finally {
+			s.close();
+		}
+	}
+
 	@SuppressWarnings("unchecked")   // Generics casting...
 	final void logTableInformation (boolean isStartup) {
 		final Session s = this.sessionFactory.openSession();
@@ -155,7 +264,7 @@ class PersistenceStoreTender {
 	/*
 	 * Creates a new open session for the associated ip address in the backing store.
 	 */
-	Date storeSuccessfulAuthorization (String address) {
+	Date storeSuccessfulAuthorization (IngressAddress address) {
 		final Session s = this.sessionFactory.openSession();
 		final Date now = new Date();
 		final Date expire = new Date(now.getTime() + this.expirationMS);
@@ -185,11 +294,48 @@ class PersistenceStoreTender {
 		}
 	}
 
+	/*
+	 * Pushes out the expiration of any open session for the associated ip address to a full expiration period from
+	 * 	now; returns the new expiration date, or null if there was no open session to extend.
+	 */
+	Date extendOpenSession (IngressAddress address) {
+		final Session s = this.sessionFactory.openSession();
+		final Date expire = new Date(System.currentTimeMillis() + this.expirationMS);
+		Transaction t = null;
+
+		try {
+			final int updated;
+
+			t = s.beginTransaction();
+
+			updated = s.createQuery(EXTENSION_UPDATE)
+					   .setParameter("expireDateTime", expire, TimestampType.INSTANCE)
+					   .setParameter("ipAddressBits", address.toBytes(), BinaryType.INSTANCE)
+					   .executeUpdate();
+
+			t.commit();
+
+			return (updated > 0) ? expire : null;
+		}
+		catch (Exception e) {
+			if (t != null) {
+				t.rollback();
+			}
+
+			LOGGER.error("Exception caught attempting to extend the session for ip " + address, e);
+
+			return null;
+		}
+		finally {
+			s.close();
+		}
+	}
+
 	/*
 	 * Marks the (hopefully singular) open session for the associated ip address as a revoked session in the backing
 	 * 	store.
 	 */
-	void storeSuccessfulRevocation (String address) {
+	void storeSuccessfulRevocation (IngressAddress address) {
 		final Session s = this.sessionFactory.openSession();
 		Transaction t = null;
 
@@ -199,8 +345,9 @@ class PersistenceStoreTender {
 
 			t = s.beginTransaction();
 
-			q = s.createQuery(OPEN_FOR_IP_QUERY, IngressSession.class).setParameter("ipAddress", address,
-																					StringType.INSTANCE);
+			q = s.createQuery(OPEN_FOR_IP_QUERY, IngressSession.class).setParameter("ipAddressBits",
+																					address.toBytes(),
+																					BinaryType.INSTANCE);
 			is = q.list();
 
 			if (is.size() == 0) {
@@ -233,6 +380,149 @@ class PersistenceStoreTender {
 		}
 	}
 
+	/*
+	 * Whether there is an open session, made by a knock, for the associated ip address.
+	 */
+	boolean hasOpenSession (IngressAddress address) {
+		final Session s = this.sessionFactory.openSession();
+
+		try {
+			final Query<Long> q = s.createQuery(OPEN_COUNT_FOR_IP_QUERY, Long.class)
+								   .setParameter("ipAddressBits", address.toBytes(), BinaryType.INSTANCE);
+
+			s.beginTransaction();
+
+			return (q.uniqueResult().longValue() > 0);
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	/*
+	 * Creates an open session, in a single transaction, for each of the blocks of a scheduled window.
+	 */
+	boolean storeSuccessfulWindowAuthorization (String windowName, List<AddressBlock> blocks, Date until) {
+		final Session s = this.sessionFactory.openSession();
+		final Date now = new Date();
+		Transaction t = null;
+
+		try {
+			t = s.beginTransaction();
+
+			for (AddressBlock block : blocks) {
+				s.save((new IngressSession()).setAddressBlock(block)
+											 .setWindowName(windowName)
+											 .setAuthorizationDate(now)
+											 .setExpirationDate(until));
+			}
+
+			t.commit();
+
+			return true;
+		}
+		catch (Exception e) {
+			if (t != null) {
+				t.rollback();
+			}
+
+			LOGGER.error("Exception caught attempting to store the sessions for window " + windowName, e);
+
+			return false;
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	/*
+	 * Moves the expiration of the open sessions of a window out to the end of its next, adjoining, occurrence.
+	 */
+	void storeWindowExtension (String windowName, Date until) {
+		this.executeWindowUpdate(WINDOW_EXTENSION_UPDATE, "expireDateTime", windowName, until);
+	}
+
+	void storeSuccessfulWindowRevocation (String windowName) {
+		this.executeWindowUpdate(WINDOW_REVOCATION_UPDATE, "revokeDateTime", windowName, new Date());
+	}
+
+	/*
+	 * Closes the open sessions of just the specified blocks of a window, as when they are no longer declared in it.
+	 */
+	void storeSuccessfulWindowRevocation (String windowName, List<AddressBlock> blocks) {
+		final Session s = this.sessionFactory.openSession();
+		final Date now = new Date();
+		Transaction t = null;
+
+		try {
+			t = s.beginTransaction();
+
+			for (AddressBlock block : blocks) {
+				s.createQuery(WINDOW_BLOCK_REVOCATION_UPDATE)
+				 .setParameter("revokeDateTime", now, TimestampType.INSTANCE)
+				 .setParameter("windowName", windowName, StringType.INSTANCE)
+				 .setParameter("ipAddressBits", block.network.toBytes(), BinaryType.INSTANCE)
+				 .setParameter("prefixLength", Integer.valueOf(block.prefixLength), IntegerType.INSTANCE)
+				 .executeUpdate();
+			}
+
+			t.commit();
+		}
+		catch (Exception e) {
+			if (t != null) {
+				t.rollback();
+			}
+
+			LOGGER.error("Exception caught attempting to close the sessions of blocks of window " + windowName, e);
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	private void executeWindowUpdate (String update, String dateParameter, String windowName, Date date) {
+		final Session s = this.sessionFactory.openSession();
+		Transaction t = null;
+
+		try {
+			t = s.beginTransaction();
+
+			s.createQuery(update)
+			 .setParameter(dateParameter, date, TimestampType.INSTANCE)
+			 .setParameter("windowName", windowName, StringType.INSTANCE)
+			 .executeUpdate();
+
+			t.commit();
+		}
+		catch (Exception e) {
+			if (t != null) {
+				t.rollback();
+			}
+
+			LOGGER.error("Exception caught attempting to update the sessions for window " + windowName, e);
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	List<IngressSession> getOpenWindowSessions () {
+		final Session s = this.sessionFactory.openSession();
+		final Query<IngressSession> q = s.createQuery(OPEN_WINDOWS_QUERY, IngressSession.class);
+		final List<IngressSession> rhett;
+
+		try {
+			s.beginTransaction();
+
+			rhett = q.list();
+		}
+		finally {
+			s.close();
+		}
+
+		return rhett;
+	}
+
 	// In this scenario, it's safe to consider that the current_timestamp in the database's context is
 	//		our current time as well.
 	List<IngressSession> getExpiredOpenSessions () {
@@ -253,12 +543,71 @@ class PersistenceStoreTender {
 	}
 
 
+	/*
+	 * The expiration runnable's list of expired sessions may be stale by the time it gets around to a given address,
+	 * 	as a knock may have extended the session (or a goodbye revoked it) in the meantime; this is checked while
+	 * 	holding the address' serialization lock.
+	 */
+	boolean isStillExpiredAndOpen (Long rowId) {
+		final Session s = this.sessionFactory.openSession();
+
+		try {
+			final Query<Long> q = s.createQuery(STILL_EXPIRED_QUERY, Long.class).setParameter("rowId", rowId);
+
+			s.beginTransaction();
+
+			return (q.uniqueResult().longValue() > 0);
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	/*
+	 * Revokes the rule for, and closes, an expired session - should it still be expired once we hold its address'
+	 * 	serialization lock. A rule which has already gone from the security group is considered revoked.
+	 */
+	void expireSession (final IngressSession expiredSession) {
+		final IngressAddress address = expiredSession.getAddress();
+
+		this.addressSerializer.serialize(address, () -> {
+			if (! this.isStillExpiredAndOpen(expiredSession.getId())) {
+				LOGGER.debug("Session {} for IP {} was renewed or revoked before it could be expired.",
+							 expiredSession.getId(), address);
+
+				return Boolean.FALSE;
+			}
+
+			try {
+				this.revocationHelper.performRevocationOnAddress(address);
+			}
+			catch (AmazonEC2Exception e) {
+				if (! Maine.MISSING_RULE_ERROR_CODE.equals(e.getErrorCode())) {
+					throw e;
+				}
+
+				LOGGER.warn("The rule for expired session IP {} was already gone from the security group.", address);
+			}
+
+			this.storeSuccessfulRevocation(address);
+			this.eventBroadcaster.publish(SessionEvent.Type.EXPIRED, address, null);
+
+			LOGGER.info("Expired session for IP {}", address);
+
+			return Boolean.TRUE;
+		});
+	}
+
+
 	/*
 	 * Simple runnable expected to be executed in a daemon thread; will sleep, periodically checking for expired
 	 * 	sessions and revoking them when found.
 	 *
 	 * Roughly once per minute (or longer should the RUNNABLE_SLEEP period be changed to be longer than a minute,)
 	 * 	the number of total and open sessions will be logged at INFO level.
+	 *
+	 * No exception ends this thread, else no session would ever expire again; a session which fails to expire is
+	 * 	retried each pass, but its failure is only logged in full the first time.
 	 */
 	protected class ExpirationRunnable
 			implements Runnable {
@@ -266,7 +615,7 @@ class PersistenceStoreTender {
 		public void run () {
 			final PersistenceStoreTender outer = PersistenceStoreTender.this;
 			final int logSpewWaitCount = (int)(TimeUnit.MINUTES.toMillis(1) / RUNNABLE_SLEEP);
-			List<IngressSession> expiredSessions;
+			final Set<Long> failingSessionIds = new HashSet<>();
 			int sleepCount = 0;
 
 			LOGGER.info("Expiration runnable started.");
@@ -283,21 +632,43 @@ class PersistenceStoreTender {
 					return;
 				}
 
-				expiredSessions = outer.getExpiredOpenSessions();
-				for (IngressSession expiredSession : expiredSessions) {
-					outer.revocationHelper.performRevocationOnAddress(expiredSession.getIpAddress());
-					outer.storeSuccessfulRevocation(expiredSession.getIpAddress());
-
-					LOGGER.info("Expired session for IP {}", expiredSession.getIpAddress());
-				}
-
-				if (sleepCount < logSpewWaitCount) {
-					sleepCount++;
+				try {
+					final List<IngressSession> expiredSessions = outer.getExpiredOpenSessions();
+					final Set<Long> stillFailingSessionIds = new HashSet<>();
+
+					for (IngressSession expiredSession : expiredSessions) {
+						try {
+							outer.expireSession(expiredSession);
+						}
+						catch (Exception e) {
+							stillFailingSessionIds.add(expiredSession.getId());
+
+							if (failingSessionIds.contains(expiredSession.getId())) {
+								LOGGER.debug("Session {} still fails to expire: {}", expiredSession.getId(),
+											 e.getMessage());
+							}
+							else {
+								LOGGER.error("Exception caught expiring session " + expiredSession.getId()
+												+ " - will retry, but log further failures only at DEBUG.", e);
+							}
+						}
+					}
+
+					// Forgets sessions which have since expired, or gone from the expired list some other way
+					failingSessionIds.clear();
+					failingSessionIds.addAll(stillFailingSessionIds);
+
+					if (sleepCount < logSpewWaitCount) {
+						sleepCount++;
+					}
+					else {
+						sleepCount = 0;
+
+						outer.logTableInformation(false);
+					}
 				}
-				else {
-					outer.logTableInformation(false);
-
-					sleepCount = 0;
+				catch (Exception e) {
+					LOGGER.error("Exception caught while expiring sessions - will retry.", e);
 				}
 			}
 		}
@@ -4,8 +4,13 @@
 
 package st.theori.apps.ec2_knock_knock;
 
+import java.util.Collection;
+
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.AmazonEC2Exception;
+import com.amazonaws.services.ec2.model.IpPermission;
+import com.amazonaws.services.ec2.model.IpRange;
+import com.amazonaws.services.ec2.model.Ipv6Range;
 import com.amazonaws.services.ec2.model.RevokeSecurityGroupIngressRequest;
 import com.amazonaws.services.ec2.model.RevokeSecurityGroupIngressResult;
 
@@ -27,14 +32,51 @@ class RevocationHelper {
 		this.securityGroupId = sgId;
 	}
 
-	RevokeSecurityGroupIngressResult performRevocationOnAddress (final String address)
+	/*
+	 * The permission for our ingress port from the single host at the address; EC2 wants IPv4 and IPv6 blocks in
+	 * 	different fields, so this is also used for building authorization requests.
+	 */
+	IpPermission buildPermission (final IngressAddress address) {
+		final IpPermission rhett = new IpPermission().withIpProtocol(Maine.PROTOCOL)
+													 .withFromPort(this.ingressPort)
+													 .withToPort(this.ingressPort);
+
+		if (address.isIPv4()) {
+			rhett.withIpv4Ranges(new IpRange().withCidrIp(address.toCidr()));
+		}
+		else {
+			rhett.withIpv6Ranges(new Ipv6Range().withCidrIpv6(address.toCidr()));
+		}
+
+		return rhett;
+	}
+
+	/*
+	 * A single permission for our ingress port covering all of the blocks, of either family, so that they may be
+	 * 	authorized or revoked in one call.
+	 */
+	IpPermission buildPermission (final Collection<AddressBlock> blocks) {
+		final IpPermission rhett = new IpPermission().withIpProtocol(Maine.PROTOCOL)
+													 .withFromPort(this.ingressPort)
+													 .withToPort(this.ingressPort);
+
+		for (AddressBlock block : blocks) {
+			if (block.isIPv4()) {
+				rhett.withIpv4Ranges(new IpRange().withCidrIp(block.toCidr()));
+			}
+			else {
+				rhett.withIpv6Ranges(new Ipv6Range().withCidrIpv6(block.toCidr()));
+			}
+		}
+
+		return rhett;
+	}
+
+	RevokeSecurityGroupIngressResult performRevocationOnAddress (final IngressAddress address)
 			throws AmazonEC2Exception {
 		final RevokeSecurityGroupIngressRequest revokeRequest = new RevokeSecurityGroupIngressRequest()
 																			.withGroupId(this.securityGroupId)
-																			.withFromPort(this.ingressPort)
-																			.withToPort(this.ingressPort)
-																			.withCidrIp(address + Maine.CIDR_SUFFIX)
-																			.withIpProtocol(Maine.PROTOCOL);
+																			.withIpPermissions(this.buildPermission(address));
 
 		return this.ec2Instance.revokeSecurityGroupIngress(revokeRequest);
 	}
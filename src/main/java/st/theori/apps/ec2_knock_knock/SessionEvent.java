@@ -0,0 +1,65 @@
+/*
+ * This class is provided under Apache License, Version 2.0
+ */
+
+package st.theori.apps.ec2_knock_knock;
+
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+/**
+ * An immutable record of a single session lifecycle change, as pushed out to event stream subscribers.
+ */
+final class SessionEvent {
+
+	enum Type {
+		AUTHORIZED,
+		EXTENDED,
+		REVOKED,
+		EXPIRED;
+
+		String getEventName () {
+			return this.name().toLowerCase();
+		}
+	}
+
+
+	static private final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ISO_INSTANT;
+
+	final long sequence;
+	final Type type;
+	final String address;
+	final Date timestamp;
+	final Date expirationDate;
+
+	SessionEvent (final long seq, final Type t, final String ipAddress, final Date expiration) {
+		this.sequence = seq;
+		this.type = t;
+		this.address = ipAddress;
+		this.timestamp = new Date();
+		this.expirationDate = expiration;
+	}
+
+	/*
+	 * Renders this event as a single server-sent-events frame; the server's epoch and the sequence number are used
+	 * 	as the event id so that a reconnecting client's Last-Event-ID header tells us where to resume.
+	 */
+	String toFrame (final String epoch) {
+		final StringBuilder sb = new StringBuilder();
+
+		sb.append("id: ").append(epoch).append(':').append(this.sequence).append('\n');
+		sb.append("event: ").append(this.type.getEventName()).append('\n');
+		sb.append("data: {\"sequence\":").append(this.sequence);
+		sb.append(",\"type\":\"").append(this.type.getEventName()).append('"');
+		sb.append(",\"address\":\"").append(this.address).append('"');
+		sb.append(",\"timestamp\":\"").append(TIMESTAMP_FORMATTER.format(this.timestamp.toInstant())).append('"');
+		if (this.expirationDate != null) {
+			sb.append(",\"expiration\":\"").append(TIMESTAMP_FORMATTER.format(this.expirationDate.toInstant()))
+			  .append('"');
+		}
+		sb.append("}\n\n");
+
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,271 @@
+/*
+ * This class is provided under Apache License, Version 2.0
+ */
+
+package st.theori.apps.ec2_knock_knock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spark.Request;
+import spark.Response;
+import spark.Spark;
+
+/**
+ * Fans session lifecycle events out to server-sent-events subscribers so that dashboards and the like need not poll
+ * 	the backing store.
+ *
+ * Publishing never blocks: each subscriber has a bounded queue and a subscriber whose queue is full when an event
+ * 	is offered is dropped (it may reconnect and resume by sequence number.) The most recent events are retained so
+ * 	that a reconnecting client, via the Last-Event-ID header or a "since" query parameter, receives what it missed;
+ * 	should what it missed no longer be retained - or should it be resuming from before a server restart, which
+ * 	we know by the epoch prefixing each event id - it is instead sent a "reset" event, telling it to resync its
+ * 	view from scratch.
+ *
+ * Spark routes are synchronous, so each connected subscriber holds one of Jetty's request threads for the life of
+ * 	its connection; for this reason we cap the number of concurrent subscribers.
+ */
+class SessionEventBroadcaster {
+
+	static final String SINCE_PARAMETER = "since";
+
+	static private final Logger LOGGER = LoggerFactory.getLogger(SessionEventBroadcaster.class);
+
+	static private final int HISTORY_SIZE = 1024;
+	static private final int SUBSCRIBER_QUEUE_SIZE = 256;
+	static private final int MAX_SUBSCRIBERS = 32;
+	static private final long KEEP_ALIVE_MS = TimeUnit.SECONDS.toMillis(15);
+
+	static private final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+	static private final byte[] KEEP_ALIVE_FRAME = ":\n\n".getBytes(StandardCharsets.UTF_8);
+	static private final char EPOCH_SEPARATOR = ':';
+	// A resume sequence we will never have issued, so resuming from it always requires a reset
+	static private final long FOREIGN_SEQUENCE = Long.MAX_VALUE;
+
+
+	// Guarded by itself; the sequence counter, history append and fan-out are done under this lock so that a
+	//		subscriber registering concurrently sees each event exactly once - either in its replay or its queue.
+	private final ArrayDeque<SessionEvent> history;
+	private final List<Subscriber> subscribers;
+	private long lastSequence;
+
+	// Distinguishes this run's sequence numbers from those of previous runs
+	private final String epoch;
+
+	SessionEventBroadcaster () {
+		this.epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+		this.history = new ArrayDeque<>(HISTORY_SIZE);
+		this.subscribers = new CopyOnWriteArrayList<>();
+		this.lastSequence = 0;
+	}
+
+	void publish (final SessionEvent.Type type, final IngressAddress address, final Date expirationDate) {
+		this.publish(type, address.toString(), expirationDate);
+	}
+
+	void publish (final SessionEvent.Type type, final AddressBlock block, final Date expirationDate) {
+		this.publish(type, block.toCidr(), expirationDate);
+	}
+
+	private void publish (final SessionEvent.Type type, final String address, final Date expirationDate) {
+		synchronized (this.history) {
+			final SessionEvent event = new SessionEvent(++this.lastSequence, type, address, expirationDate);
+
+			if (this.history.size() == HISTORY_SIZE) {
+				this.history.removeFirst();
+			}
+			this.history.addLast(event);
+
+			for (Subscriber subscriber : this.subscribers) {
+				if (! subscriber.queue.offer(event)) {
+					subscriber.dropped = true;
+					this.subscribers.remove(subscriber);
+
+					LOGGER.warn("Dropping slow event stream subscriber {} at sequence {}.", subscriber.remoteAddress,
+								event.sequence);
+				}
+			}
+		}
+	}
+
+	/*
+	 * The route body for the event stream; this does not return until the client disconnects or is dropped for
+	 * 	being too slow.
+	 */
+	Object stream (final Request request, final Response response) {
+		final HttpServletResponse raw = response.raw();
+		final Subscriber subscriber;
+		final OutputStream os;
+
+		subscriber = this.subscribe(request.ip(), this.getResumeSequence(request));
+
+		if (subscriber == null) {
+			LOGGER.warn("Refusing event stream subscription from {} - already at {} subscribers.", request.ip(),
+						MAX_SUBSCRIBERS);
+
+			throw Spark.halt(503, "Too many event stream subscribers.");
+		}
+
+		LOGGER.info("Event stream subscriber {} connected with {} events to replay{}.", subscriber.remoteAddress,
+					subscriber.replay.size(), ((subscriber.resetSequence >= 0) ? " after a reset" : ""));
+
+		raw.setStatus(200);
+		raw.setContentType("text/event-stream");
+		raw.setCharacterEncoding("UTF-8");
+		raw.setHeader("Cache-Control", "no-cache");
+		// Disable proxy buffering (nginx) so that events arrive when they are sent
+		raw.setHeader("X-Accel-Buffering", "no");
+
+		try {
+			os = raw.getOutputStream();
+
+			if (subscriber.resetSequence >= 0) {
+				os.write(this.buildResetFrame(subscriber.resetSequence).getBytes(StandardCharsets.UTF_8));
+			}
+			for (SessionEvent event : subscriber.replay) {
+				os.write(event.toFrame(this.epoch).getBytes(StandardCharsets.UTF_8));
+			}
+			subscriber.replay.clear();
+			os.flush();
+
+			while (! subscriber.dropped) {
+				final SessionEvent event = subscriber.queue.poll(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+
+				if (event != null) {
+					os.write(event.toFrame(this.epoch).getBytes(StandardCharsets.UTF_8));
+				}
+				else {
+					// Also how we find out about clients which have gone away while things are quiet
+					os.write(KEEP_ALIVE_FRAME);
+				}
+				os.flush();
+			}
+		}
+		catch (IOException e) {
+			LOGGER.debug("Event stream subscriber {} went away: {}", subscriber.remoteAddress, e.getMessage());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			this.subscribers.remove(subscriber);
+		}
+
+		LOGGER.info("Event stream subscriber {} disconnected.", subscriber.remoteAddress);
+
+		return "";
+	}
+
+	/*
+	 * Returns null if we are already at our subscriber limit.
+	 */
+	Subscriber subscribe (final String remoteAddress, final long resumeAfterSequence) {
+		final Subscriber rhett = new Subscriber(remoteAddress);
+
+		synchronized (this.history) {
+			if (this.subscribers.size() >= MAX_SUBSCRIBERS) {
+				return null;
+			}
+
+			if (resumeAfterSequence >= 0) {
+				final long oldestRetained = this.history.isEmpty() ? (this.lastSequence + 1)
+																   : this.history.getFirst().sequence;
+
+				// Either some of what was missed has aged out, or the sequence is not one of ours
+				if ((resumeAfterSequence < (oldestRetained - 1)) || (resumeAfterSequence > this.lastSequence)) {
+					rhett.resetSequence = this.lastSequence;
+				}
+				else {
+					for (SessionEvent event : this.history) {
+						if (event.sequence > resumeAfterSequence) {
+							rhett.replay.add(event);
+						}
+					}
+				}
+			}
+
+			this.subscribers.add(rhett);
+		}
+
+		return rhett;
+	}
+
+	/*
+	 * The id of the reset frame moves the client's Last-Event-ID on, so that reconnecting doesn't reset it again.
+	 */
+	private String buildResetFrame (final long sequence) {
+		return "id: " + this.epoch + EPOCH_SEPARATOR + sequence + "\nevent: reset\ndata: {\"sequence\":" + sequence
+					+ "}\n\n";
+	}
+
+	/*
+	 * Returns the sequence number after which the client wishes to resume, or -1 if it wishes only new events. The
+	 * 	value may be an event id ("<epoch>:<sequence>") or, for convenience, a bare sequence number of this run.
+	 */
+	private long getResumeSequence (final Request request) {
+		String value = request.headers(LAST_EVENT_ID_HEADER);
+
+		if (StringUtils.isBlank(value)) {
+			value = request.queryParams(SINCE_PARAMETER);
+		}
+
+		if (StringUtils.isNotBlank(value)) {
+			final int separatorIndex;
+
+			value = value.trim();
+			separatorIndex = value.indexOf(EPOCH_SEPARATOR);
+			if (separatorIndex != -1) {
+				if (! this.epoch.equals(value.substring(0, separatorIndex))) {
+					return FOREIGN_SEQUENCE;
+				}
+
+				value = value.substring(separatorIndex + 1);
+			}
+
+			try {
+				return Long.parseLong(value);
+			}
+			catch (NumberFormatException e) {
+				LOGGER.warn("Ignoring unparseable resume sequence '{}' from {}.", value, request.ip());
+			}
+		}
+
+		return -1;
+	}
+
+
+	static class Subscriber {
+
+		final String remoteAddress;
+		final BlockingQueue<SessionEvent> queue;
+		final List<SessionEvent> replay;
+		// The sequence to announce in a reset event, or -1 if no reset is needed
+		long resetSequence;
+		volatile boolean dropped;
+
+		Subscriber (final String address) {
+			this.remoteAddress = address;
+			this.queue = new ArrayBlockingQueue<>(SUBSCRIBER_QUEUE_SIZE);
+			this.replay = new ArrayList<>();
+			this.resetSequence = -1;
+			this.dropped = false;
+		}
+
+	}
+
+}
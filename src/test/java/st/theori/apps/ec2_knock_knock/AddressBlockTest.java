@@ -0,0 +1,94 @@
+/*
+ * This class is provided under Apache License, Version 2.0
+ */
+
+package st.theori.apps.ec2_knock_knock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class AddressBlockTest {
+
+	@Test
+	public void testIPv4Containment () {
+		final AddressBlock block = AddressBlock.parse("10.1.2.0/24");
+
+		assertTrue(block.isIPv4());
+		assertTrue(block.contains(IngressAddress.parse("10.1.2.0")));
+		assertTrue(block.contains(IngressAddress.parse("10.1.2.255")));
+		assertFalse(block.contains(IngressAddress.parse("10.1.3.0")));
+		assertFalse(block.contains(IngressAddress.parse("10.1.1.255")));
+	}
+
+	@Test
+	public void testIPv6Containment () {
+		final AddressBlock block = AddressBlock.parse("2001:db8:1::/48");
+
+		assertFalse(block.isIPv4());
+		assertTrue(block.contains(IngressAddress.parse("2001:db8:1::1")));
+		assertTrue(block.contains(IngressAddress.parse("2001:db8:1:ffff:ffff:ffff:ffff:ffff")));
+		assertFalse(block.contains(IngressAddress.parse("2001:db8:2::1")));
+	}
+
+	@Test
+	public void testPrefixesSpanningTheLongBoundary () {
+		final AddressBlock block = AddressBlock.parse("2001:db8::8000:0:0:0/65");
+
+		assertTrue(block.contains(IngressAddress.parse("2001:db8::ffff:0:0:1")));
+		assertFalse(block.contains(IngressAddress.parse("2001:db8::7fff:0:0:1")));
+		assertTrue(AddressBlock.parse("2001:db8::1/128").contains(IngressAddress.parse("2001:db8::1")));
+		assertFalse(AddressBlock.parse("2001:db8::1/128").contains(IngressAddress.parse("2001:db8::2")));
+	}
+
+	@Test
+	public void testWholeFamilyBlocks () {
+		assertTrue(AddressBlock.parse("0.0.0.0/0").contains(IngressAddress.parse("1.2.3.4")));
+		assertTrue(AddressBlock.parse("::/0").contains(IngressAddress.parse("2001:db8::1")));
+	}
+
+	@Test
+	public void testFamiliesDoNotContainEachOther () {
+		final IngressAddress ipv4 = IngressAddress.parse("1.2.3.4");
+
+		// The mapped form of every IPv4 address lies within these, but EC2 would grant it nothing
+		assertFalse(AddressBlock.parse("::/0").contains(ipv4));
+		assertFalse(AddressBlock.parse("::/64").contains(ipv4));
+		assertFalse(AddressBlock.parse("::/80").contains(ipv4));
+		assertFalse(AddressBlock.parse("0.0.0.0/0").contains(IngressAddress.parse("::")));
+		assertFalse(AddressBlock.parse("0.0.0.0/0").contains(IngressAddress.parse("2001:db8::1")));
+	}
+
+	@Test
+	public void testHostBitsAreNormalizedAway () {
+		assertEquals(AddressBlock.parse("10.1.2.0/24"), AddressBlock.parse("10.1.2.3/24"));
+		assertEquals(AddressBlock.parse("10.1.2.0/24").hashCode(), AddressBlock.parse("10.1.2.3/24").hashCode());
+		assertEquals("10.1.2.0/24", AddressBlock.parse("10.1.2.3/24").toCidr());
+		assertEquals("2001:db8:0:0:0:0:0:0/32", AddressBlock.parse("2001:db8::1/32").toCidr());
+	}
+
+	@Test
+	public void testBareAddressIsASingleHost () {
+		assertEquals(32, AddressBlock.parse("10.1.2.3").prefixLength);
+		assertEquals(128, AddressBlock.parse("2001:db8::1").prefixLength);
+	}
+
+	@Test
+	public void testUnparseableBlocks () {
+		for (String block : new String[] { "10.1.2.0/33", "10.1.2.0/-1", "10.1.2.0/", "10.1.2.0/x", "2001:db8::/129",
+										   "10.1.2/24" }) {
+			try {
+				AddressBlock.parse(block);
+
+				fail("Expected '" + block + "' to be refused.");
+			}
+			catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+ * This class is provided under Apache License, Version 2.0
+ */
+
+package st.theori.apps.ec2_knock_knock;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class IngressAddressTest {
+
+	@Test
+	public void testParseIPv4 () {
+		final IngressAddress address = IngressAddress.parse("10.1.2.3");
+
+		assertTrue(address.isIPv4());
+		assertEquals(IngressAddress.IPV4_BIT_LENGTH, address.getBitLength());
+		assertEquals(0x0A010203, address.toIPv4());
+		assertEquals("10.1.2.3", address.toString());
+		assertEquals("10.1.2.3/32", address.toCidr());
+	}
+
+	@Test
+	public void testParseIPv6 () {
+		final IngressAddress address = IngressAddress.parse("2001:db8::1");
+
+		assertFalse(address.isIPv4());
+		assertEquals(IngressAddress.IPV6_BIT_LENGTH, address.getBitLength());
+		assertEquals(0x20010DB800000000L, address.high);
+		assertEquals(1L, address.low);
+		assertEquals("2001:db8:0:0:0:0:0:1/128", address.toCidr());
+	}
+
+	@Test
+	public void testMappedSpellingIsTheSameAddress () {
+		assertEquals(IngressAddress.parse("10.1.2.3"), IngressAddress.parse("::ffff:10.1.2.3"));
+		assertEquals(IngressAddress.parse("10.1.2.3").hashCode(), IngressAddress.parse("::ffff:10.1.2.3").hashCode());
+	}
+
+	@Test
+	public void testBracketsAndZoneAreIgnored () {
+		assertEquals(IngressAddress.parse("fe80::1"), IngressAddress.parse("[fe80::1%eth0]"));
+	}
+
+	@Test
+	public void testBytesRoundTrip () {
+		for (String literal : new String[] { "0.0.0.0", "255.255.255.255", "192.168.0.1", "::", "2001:db8::ff:1" }) {
+			final IngressAddress address = IngressAddress.parse(literal);
+			final byte[] bytes = address.toBytes();
+
+			assertEquals(IngressAddress.BYTE_LENGTH, bytes.length);
+			assertEquals(address, IngressAddress.fromBytes(bytes));
+		}
+
+		assertArrayEquals(IngressAddress.parse("::ffff:1.2.3.4").toBytes(),
+						  IngressAddress.fromBytes(new byte[] { 1, 2, 3, 4 }).toBytes());
+	}
+
+	@Test
+	public void testUnparseableAddresses () {
+		for (String literal : new String[] { "", "1.2.3", "1.2.3.4.5", "1.2.3.256", "1..2.3", "1.2.3.-4", "a.b.c.d",
+											 "1.2.3.4 ", "2001:db8::g", "localhost" }) {
+			try {
+				IngressAddress.parse(literal);
+
+				fail("Expected '" + literal + "' to be refused.");
+			}
+			catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+}
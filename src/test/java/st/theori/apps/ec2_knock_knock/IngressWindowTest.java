@@ -0,0 +1,109 @@
+/*
+ * This class is provided under Apache License, Version 2.0
+ */
+
+package st.theori.apps.ec2_knock_knock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import org.junit.Test;
+
+public class IngressWindowTest {
+
+	static private final Duration LEAD = Duration.ofMinutes(5);
+
+	// 2018-01-01 is a Monday
+	static private ZonedDateTime at (final int dayOfMonth, final int hour, final int minute) {
+		return ZonedDateTime.of(2018, 1, dayOfMonth, hour, minute, 0, 0, ZoneOffset.UTC);
+	}
+
+	@Test
+	public void testDaytimeWindow () {
+		final IngressWindow window = IngressWindow.parse("office 09:00-17:00 MON-FRI 10.1.0.0/16");
+
+		assertEquals(at(1, 17, 0), window.getActiveUntil(at(1, 12, 0), LEAD));
+		assertEquals(at(1, 17, 0), window.getActiveUntil(at(1, 9, 0), LEAD));
+		assertNull(window.getActiveUntil(at(1, 17, 0), LEAD));
+		assertNull(window.getActiveUntil(at(1, 8, 0), LEAD));
+	}
+
+	@Test
+	public void testLeadTime () {
+		final IngressWindow window = IngressWindow.parse("office 09:00-17:00 MON-FRI 10.1.0.0/16");
+
+		assertEquals(at(1, 17, 0), window.getActiveUntil(at(1, 8, 55), LEAD));
+		assertNull(window.getActiveUntil(at(1, 8, 54), LEAD));
+		// Tomorrow's occurrence, starting at midnight, is within the lead time
+		assertEquals(at(2, 1, 0), IngressWindow.parse("night 00:00-01:00 * 10.1.0.0/16")
+												.getActiveUntil(at(1, 23, 56), LEAD));
+	}
+
+	@Test
+	public void testDaysAreRespected () {
+		final IngressWindow window = IngressWindow.parse("office 09:00-17:00 MON-FRI 10.1.0.0/16");
+
+		// Saturday and Sunday
+		assertNull(window.getActiveUntil(at(6, 12, 0), LEAD));
+		assertNull(window.getActiveUntil(at(7, 12, 0), LEAD));
+		assertEquals(at(5, 17, 0), window.getActiveUntil(at(5, 12, 0), LEAD));
+	}
+
+	@Test
+	public void testOvernightWindow () {
+		final IngressWindow window = IngressWindow.parse("oncall 22:00-06:00 FRI 10.1.0.0/16");
+
+		// Friday's occurrence runs into Saturday morning, but Saturday has no occurrence of its own
+		assertEquals(at(6, 6, 0), window.getActiveUntil(at(5, 23, 0), LEAD));
+		assertEquals(at(6, 6, 0), window.getActiveUntil(at(6, 3, 0), LEAD));
+		assertNull(window.getActiveUntil(at(6, 6, 0), LEAD));
+		assertNull(window.getActiveUntil(at(6, 23, 0), LEAD));
+		// Nor does Thursday
+		assertNull(window.getActiveUntil(at(5, 3, 0), LEAD));
+	}
+
+	@Test
+	public void testAllDayWindow () {
+		final IngressWindow window = IngressWindow.parse("always 00:00-00:00 * 10.1.0.0/16");
+
+		assertEquals(at(2, 0, 0), window.getActiveUntil(at(1, 0, 0), LEAD));
+		assertEquals(at(2, 0, 0), window.getActiveUntil(at(1, 23, 59), LEAD));
+	}
+
+	@Test
+	public void testWeekWrappingDayRange () {
+		final IngressWindow window = IngressWindow.parse("weekend 09:00-17:00 FRI-MON 10.1.0.0/16");
+
+		assertEquals(at(1, 17, 0), window.getActiveUntil(at(1, 12, 0), LEAD));
+		assertEquals(at(7, 17, 0), window.getActiveUntil(at(7, 12, 0), LEAD));
+		assertNull(window.getActiveUntil(at(3, 12, 0), LEAD));
+	}
+
+	@Test
+	public void testUnparseableWindows () {
+		for (String line : new String[] { "office 09:00-17:00 MON-FRI",
+										  "office 09:00 MON-FRI 10.1.0.0/16",
+										  "office 9am-5pm MON-FRI 10.1.0.0/16",
+										  "office 09:00-17:00 , 10.1.0.0/16",
+										  "office 09:00-17:00 MON- 10.1.0.0/16",
+										  "office 09:00-17:00 MON-TUE-WED 10.1.0.0/16",
+										  "office 09:00-17:00 MON-FRI 10.1.2.3",
+										  "office 09:00-17:00 MON-FRI 10.1.2.3/32",
+										  "office 09:00-17:00 MON-FRI 2001:db8::1/128" }) {
+			try {
+				IngressWindow.parse(line);
+
+				fail("Expected '" + line + "' to be refused.");
+			}
+			catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+}